@@ -23,6 +23,7 @@
 package ro.plesoianu;
 
 import java.util.Vector;
+import java.util.Hashtable;
 import java.util.Stack;
 import java.io.*;
 import javax.microedition.io.*;
@@ -31,7 +32,7 @@ import javax.microedition.lcdui.*;
 import javax.microedition.midlet.*;
 
 public class PocketGopher extends MIDlet
-		implements CommandListener, ItemCommandListener {
+		implements CommandListener, ItemCommandListener, ItemStateListener {
 	public final String[] itemTypeLabels = new String[] {
 		"0 Text file", "1 Directory", "7 Search Query",
 		"h Web page", "g GIF image", "I Image"
@@ -44,6 +45,14 @@ public class PocketGopher extends MIDlet
 	private Command hist_cmd = new Command("History", Command.SCREEN, 10);
 	private Command exit_cmd = new Command("Exit", Command.EXIT, 10);
 	private Command go_cmd = new Command("Go", Command.ITEM, 5);
+	private Command instant_on_cmd =
+		new Command("Instant revisits", Command.SCREEN, 10);
+	private Command instant_off_cmd =
+		new Command("Always refetch", Command.SCREEN, 10);
+	private Command thumbs_on_cmd =
+		new Command("Show thumbnails", Command.SCREEN, 10);
+	private Command thumbs_off_cmd =
+		new Command("Hide thumbnails", Command.SCREEN, 10);
 	private Command dir_pgup_cmd;
 	private Command dir_pgdn_cmd;
 	private ImageItem imgholder = null;
@@ -84,26 +93,44 @@ public class PocketGopher extends MIDlet
 	private Vector previous_dir = new Vector();
 	private Vector current_dir = new Vector();
 	private int dir_page_num = 0;
-	private int dir_page_size = 25; // Arbitrary value; about half a page.
+	private int dir_page_size = 25; // Set by the governor for each menu.
 	private int dir_page_count = 0;
+	private TextField filter_fld =
+		new TextField("Filter", "", 40, TextField.ANY);
+	private MenuIndex dir_index = null;
+	private Vector filtered_dir = current_dir; // What the pages show.
 
 	private Stack history = new Stack();
 	private Thread loading = null;
+
+	// Last-known copies of menus and texts, for instant revisits.
+	private ResourceCache cache = new ResourceCache(8);
+	private boolean instant_mode = false;
+	private String shown_dir_key = null;
+	private String shown_text_key = null;
 	
 	private Vector current_text;
 	private int txt_page_num = 0;
 	private int txt_page_size = dir_page_size;
 	private int txt_page_count = 0;
+	
+	private MemoryGovernor governor;
+	private ThumbnailLoader thumbnails = null; // Only in thumbnail mode.
 
 	public PocketGopher() {
 		top.addCommand(nav_cmd);
 		top.addCommand(home_cmd);
 		top.addCommand(back_cmd);
 		top.addCommand(hist_cmd);
+		top.addCommand(instant_on_cmd);
+		top.addCommand(thumbs_on_cmd);
 		top.addCommand(exit_cmd);
 		top.setCommandListener(this);
+		top.setItemStateListener(this);
 
 		Display.getDisplay(this).setCurrent(top);
+		governor = new MemoryGovernor(
+			top.getHeight() / Font.getDefaultFont().getHeight());
 		goHome(); // Doing it after showing the window, for effect.
 		history.push(null);
 		
@@ -117,6 +144,7 @@ public class PocketGopher extends MIDlet
 	public void pauseApp() { }
 	public void destroyApp(boolean unconditional) {
 		stopLoading();
+		if (thumbnails != null) thumbnails.shutdown();
 	}
 	
 	public void commandAction(Command c, Displayable s) {
@@ -138,23 +166,55 @@ public class PocketGopher extends MIDlet
 				if (prev == null) {
 					goHome();
 				} else if (current_dir != null) {
+					shown_dir_key = ResourceCache.keyFor(prev);
+					resetDirFilter();
 					setUpDirPagination(current_dir, top);
 					top.setTitle(
 						prev.hostname
 						+ " " + String.valueOf(prev.port)
 						+ " " + prev.selector);
 				} else {
+					// Dropped for memory; clear the stale page
+					// until the reload arrives.
+					shown_dir_key = null;
+					resetDirFilter();
+					top.deleteAll();
+					top.removeCommand(dir_pgup_cmd);
+					top.removeCommand(dir_pgdn_cmd);
 					history.pop();
 					loadItem(prev);
 				}
 			}
 		} else if (c == hist_cmd) {
 			if (bottom == null) initSecondaryView();
+			shown_text_key = null;
 			bottom.deleteAll();
 			addDirectoryToForm(history, bottom);
 			bottom.setTitle("Session history");
 			Display.getDisplay(this).setCurrent(bottom);
+		} else if (c == instant_on_cmd) {
+			instant_mode = true;
+			top.removeCommand(instant_on_cmd);
+			top.addCommand(instant_off_cmd);
+		} else if (c == instant_off_cmd) {
+			instant_mode = false;
+			cache.trim(0); // Nothing reads it outside instant mode.
+			top.removeCommand(instant_off_cmd);
+			top.addCommand(instant_on_cmd);
+		} else if (c == thumbs_on_cmd) {
+			thumbnails = new ThumbnailLoader(
+				Font.getDefaultFont().getHeight() * 2, 2);
+			top.removeCommand(thumbs_on_cmd);
+			top.addCommand(thumbs_off_cmd);
+			refreshDirPage();
+		} else if (c == thumbs_off_cmd) {
+			thumbnails.shutdown();
+			thumbnails = null;
+			top.removeCommand(thumbs_off_cmd);
+			top.addCommand(thumbs_on_cmd);
+			refreshDirPage();
 		} else if (c == btm_close_cmd) {
+			shown_text_key = null;
 			Display.getDisplay(this).setCurrent(top);
 		} else if (c == nav_cmd) {
 			if (navform == null) initNavForm();
@@ -198,19 +258,25 @@ public class PocketGopher extends MIDlet
 			}
 		} else if (c == dir_pgdn_cmd) {
 			if (dir_page_num < dir_page_count) {
-				top.deleteAll();
+				clearDirPage(top);
 				dir_page_num++;
-				paginateDir(current_dir, top, dir_page_num);
+				paginateDir(filtered_dir, top, dir_page_num);
 			}
 		} else if (c == dir_pgup_cmd) {
 			if (dir_page_num > 1) {
-				top.deleteAll();
+				clearDirPage(top);
 				dir_page_num--;
-				paginateDir(current_dir, top, dir_page_num);
+				paginateDir(filtered_dir, top, dir_page_num);
 			}
 		}
 	}
 	
+	public void itemStateChanged(Item i) {
+		if (i != filter_fld || dir_index == null) return;
+		if (current_dir == null) return;
+		setUpDirPagination(current_dir, top, 1);
+	}
+	
 	public void commandAction(Command c, Item i) {
 		if (c == go_cmd) {
 			loadItem((DirectoryItem) i);
@@ -243,11 +309,20 @@ public class PocketGopher extends MIDlet
 		stopLoading();
 		current_dir = Data.parseDirectory(Data.slurpInputStream(
 			this.getClass().getResourceAsStream("/home.txt")));
+		shown_dir_key = null;
+		resetDirFilter();
+		filtered_dir = current_dir;
+		if (thumbnails != null) thumbnails.cancelAll();
 		top.setTitle("Pocket Gopher");
 		top.deleteAll();
 		addDirectoryToForm(current_dir, top);
 	}
 	
+	// False once the calling thread was stopped or superseded.
+	public boolean isCurrentLoad() {
+		return Thread.currentThread() == loading;
+	}
+	
 	public void stopLoading() {
 		if (loading != null) {
 			loading.interrupt();
@@ -257,6 +332,21 @@ public class PocketGopher extends MIDlet
 		top.setTicker(null);
 	}
 	
+	// Drops whatever can be fetched again, before a load needs the room.
+	public void relieveMemoryPressure() {
+		if (!MemoryGovernor.isLow()) return;
+		cache.trim(cache.size() / 2);
+		previous_dir = null; // Going back will reload it.
+		if (bottom == null || !bottom.isShown()) {
+			current_text = null;
+			shown_text_key = null;
+			if (imgholder != null) imgholder.setImage(null);
+		}
+		if (thumbnails != null) thumbnails.clearCache();
+		if (dir_index != null) dir_index.dropIndex();
+		System.gc();
+	}
+	
 	public void getURL(String url) {
 		try {
 			platformRequest(url);
@@ -269,8 +359,15 @@ public class PocketGopher extends MIDlet
 		Display.getDisplay(this).setCurrent(d);
 	}
 	
+	// In instant mode, a cached copy is shown right away and the fresh
+	// one only replaces it if its content hash differs.
 	public void loadTextFile(final DirectoryItem di) {
 		if (bottom == null) initSecondaryView();
+		relieveMemoryPressure();
+		final String key = ResourceCache.keyFor(di);
+		final CachedResource stale = instant_mode ? cache.get(key) : null;
+		if (stale != null)
+			showText(di, key, (Vector) stale.content, 1);
 		loading = new Thread(new Runnable() {
 			public void run() {
 				top.setTicker(loading_notification);
@@ -278,61 +375,142 @@ public class PocketGopher extends MIDlet
 				
 				String tmp = Data.fetchText(
 					di.hostname, di.port, di.selector);
+				if (!isCurrentLoad()) return; // Stopped or superseded.
 				if (tmp != null) {
-					current_text = Data.splitString(
-						tmp.replace('\r', '\n'), '\n');
-					setUpTextPagination(
-						current_text, bottom);
-					bottom.setTitle(
-						di.hostname
-						+ " " + String.valueOf(di.port)
-						+ " " + di.selector);
-					show(bottom);
-				} else {
+					final int hash = Data.contentHash(tmp);
+					if (stale == null) {
+						Vector text = Data.splitString(
+							tmp.replace('\r', '\n'), '\n');
+						remember(key, text, hash);
+						showText(di, key, text, 1);
+					} else if (stale.hash != hash) {
+						Vector text = Data.splitString(
+							tmp.replace('\r', '\n'), '\n');
+						remember(key, text, hash);
+						// Refresh in place, only if still in view.
+						if (key.equals(shown_text_key)
+								&& bottom.isShown()) {
+							current_text = text;
+							setUpTextPagination(current_text,
+								bottom, txt_page_num);
+						}
+					}
+				} else if (stale == null) {
 					show(net_fail);
 				}
-				top.removeCommand(stop_cmd);
-				top.setTicker(null);
+				if (isCurrentLoad()) { // Else a newer load owns them.
+					top.removeCommand(stop_cmd);
+					top.setTicker(null);
+				}
 			}
 		});
 		loading.start();
 	}
 	
+	public void remember(String key, Object content, int hash) {
+		if (instant_mode) cache.put(key, content, hash);
+	}
+	
+	public void showText(DirectoryItem di, String key, Vector text, int page) {
+		current_text = text;
+		shown_text_key = key;
+		setUpTextPagination(current_text, bottom, page);
+		bottom.setTitle(
+			di.hostname
+			+ " " + String.valueOf(di.port)
+			+ " " + di.selector);
+		show(bottom);
+	}
+	
 	public void loadDirectory(final DirectoryItem di) {
+		relieveMemoryPressure();
+		final String key = ResourceCache.keyFor(di);
+		final CachedResource stale = instant_mode ? cache.get(key) : null;
+		if (stale != null) {
+			history.push(new DirectoryItem(di));
+			previous_dir = current_dir;
+			showDirectory(di, key, (Vector) stale.content, 1);
+		}
 		loading = new Thread(new Runnable() {
 			public void run() {
 				top.setTicker(loading_notification);
 				top.addCommand(stop_cmd);
 				String content = Data.fetchText(
 					di.hostname, di.port, di.selector);
+				if (!isCurrentLoad()) return; // Stopped or superseded.
 				if (content != null) {
-					history.push(new DirectoryItem(di));
-					previous_dir = current_dir;
-					current_dir =
-						Data.parseDirectory(content);
-					setUpDirPagination(current_dir, top);
-					top.setTitle(di.hostname + " "
-						+ String.valueOf(di.port) + " "
-						+ di.selector);
-					show(top); // Not always redundant.
-				} else {
+					final int hash = Data.contentHash(content);
+					if (stale == null) {
+						history.push(new DirectoryItem(di));
+						previous_dir = current_dir;
+						Vector dir =
+							Data.parseDirectory(content);
+						remember(key, dir, hash);
+						showDirectory(di, key, dir, 1);
+						loadPlusViews(di, dir);
+					} else if (stale.hash != hash) {
+						Vector dir =
+							Data.parseDirectory(content);
+						remember(key, dir, hash);
+						if (key.equals(shown_dir_key)
+								&& top.isShown()) {
+							current_dir = dir;
+							setUpDirPagination(current_dir,
+								top, dir_page_num);
+						}
+						loadPlusViews(di, dir);
+					}
+				} else if (stale == null) {
 					show(net_fail);
 				}
-				top.removeCommand(stop_cmd);
-				top.setTicker(null);
+				if (isCurrentLoad()) { // Else a newer load owns them.
+					top.removeCommand(stop_cmd);
+					top.setTicker(null);
+				}
 			}
 		});
 		loading.start();
 	}
 	
+	public void showDirectory(DirectoryItem di, String key, Vector dir, int page) {
+		if (!key.equals(shown_dir_key)) resetDirFilter();
+		current_dir = dir;
+		shown_dir_key = key;
+		setUpDirPagination(current_dir, top, page);
+		top.setTitle(di.hostname + " "
+			+ String.valueOf(di.port) + " "
+			+ di.selector);
+		show(top); // Not always redundant.
+	}
+	
+	// A single "$" request fetches the Gopher+ attributes of a whole
+	// menu. The views end up on the items, so they're cached with it.
+	public void loadPlusViews(DirectoryItem di, Vector dir) {
+		if (di.selector.indexOf('\t') > -1) return; // Search results.
+		if (!Data.hasPlusItems(dir)) return;
+		if (!isCurrentLoad()) return; // The user has moved on.
+		Hashtable views = Data.fetchPlusViews(
+			di.hostname, di.port, di.selector);
+		if (views.isEmpty()) return;
+		for (int i = 0; i < dir.size(); i++) {
+			DirectoryItem item = (DirectoryItem) dir.elementAt(i);
+			if (item == null || !item.gopherPlus) continue;
+			String view = (String) views.get(
+				ResourceCache.keyFor(item));
+			if (view != null) item.setView(view);
+		}
+	}
+	
 	public void loadImage(final DirectoryItem di) {
 		if (bottom == null) initSecondaryView();
+		relieveMemoryPressure();
 		loading = new Thread(new Runnable() {
 			public void run() {
 				top.setTicker(loading_notification);
 				Image content = Data.fetchImage(
 					di.hostname, di.port, di.selector);
 				if (content != null) {
+					shown_text_key = null;
 					bottom.deleteAll();
 					bottom.setTitle(
 						di.hostname + " "
@@ -378,12 +556,70 @@ public class PocketGopher extends MIDlet
 		}
 		f.append(di);
 	}
+	
+	// The placeholder gets its image later, from the thumbnail loader.
+	public void addThumbnailToForm(DirectoryItem di, Form f,
+			ThumbnailLoader loader) {
+		if (di == null || f == null) return;
+		if (di.getItemType() == 'g' || di.getItemType() == 'I') {
+			ImageItem holder = new ImageItem(null, null,
+				Item.LAYOUT_LEFT | Item.LAYOUT_NEWLINE_BEFORE,
+				"(loading)");
+			f.append(holder);
+			loader.request(di, holder);
+		}
+	}
+	
+	// Redraws the current menu page, if a paginated menu is showing.
+	public void refreshDirPage() {
+		if (shown_dir_key == null) return;
+		clearDirPage(top);
+		paginateDir(filtered_dir, top, dir_page_num);
+	}
+	
+	public void resetDirFilter() {
+		filter_fld.setString("");
+		if (dir_index != null) dir_index.dropIndex();
+		dir_index = null;
+	}
+	
+	// Only menus longer than a page get a filter field.
+	public boolean wantsDirFilter() {
+		return dir_index != null && (dir_index.size() > dir_page_size
+			|| filter_fld.getString().length() > 0);
+	}
+	
+	// Keeps the filter field, and with it the focus, while typing.
+	public void clearDirPage(Form f) {
+		if (f.size() > 0 && f.get(0) == filter_fld && wantsDirFilter()) {
+			while (f.size() > 1) f.delete(f.size() - 1);
+		} else {
+			f.deleteAll();
+		}
+	}
 
 	public void setUpDirPagination(final Vector dir, Form f) {
-		dir_page_num = 1;
-		dir_page_count = Data.numPages(dir.size(), dir_page_size);
-		f.deleteAll();
-		paginateDir(dir, f, 1);
+		setUpDirPagination(dir, f, 1);
+	}
+	
+	public void setUpDirPagination(final Vector dir, Form f, int page) {
+		// Keep the first visible item in view if the page size changes.
+		final int first = (page - 1) * dir_page_size;
+		dir_page_size = governor.dirPageSize();
+		page = first / dir_page_size + 1;
+		if (dir_index == null || !dir_index.covers(dir)) {
+			if (dir_index != null) dir_index.dropIndex();
+			dir_index = new MenuIndex(dir);
+		}
+		filtered_dir = dir_index.filter(filter_fld.getString());
+		dir_page_count =
+			Data.numPages(filtered_dir.size(), dir_page_size);
+		if (dir_page_count < 1) dir_page_count = 1; // No matches.
+		if (page > dir_page_count) page = dir_page_count;
+		if (page < 1) page = 1;
+		dir_page_num = page;
+		clearDirPage(f);
+		paginateDir(filtered_dir, f, page);
 		if (dir_page_count > 1) {
 			f.addCommand(dir_pgup_cmd);
 			f.addCommand(dir_pgdn_cmd);
@@ -401,19 +637,38 @@ public class PocketGopher extends MIDlet
 		final int start_offset = (page - 1) * dir_page_size;
 		int end_offset = start_offset + dir_page_size;
 		if (end_offset > dir.size()) end_offset = dir.size();
+		final long started = System.currentTimeMillis();
+		if (f.size() == 0 && wantsDirFilter()) f.append(filter_fld);
 		String pagecount = "Page " + String.valueOf(page)
 			+ " of " + String.valueOf(dir_page_count);
 		f.append(pagecount + "\n\n");
-		for (int i = start_offset; i < end_offset; i++)
-			addDirItemToForm((DirectoryItem) dir.elementAt(i), f);
+		// Read once: the mode may be toggled while a loader thread is here.
+		final ThumbnailLoader loader = thumbnails;
+		if (loader != null) loader.cancelAll();
+		for (int i = start_offset; i < end_offset; i++) {
+			DirectoryItem di = (DirectoryItem) dir.elementAt(i);
+			if (loader != null) addThumbnailToForm(di, f, loader);
+			addDirItemToForm(di, f);
+		}
 		f.append("\n\n" + pagecount);
+		governor.dirPageRendered(System.currentTimeMillis() - started,
+			end_offset - start_offset);
 	}
 
 	public void setUpTextPagination(final Vector text, Form f) {
-		txt_page_num = 1;
+		setUpTextPagination(text, f, 1);
+	}
+	
+	public void setUpTextPagination(final Vector text, Form f, int page) {
+		final int first = (page - 1) * txt_page_size;
+		txt_page_size = governor.textPageSize();
+		page = first / txt_page_size + 1;
 		txt_page_count = Data.numPages(text.size(), txt_page_size);
+		if (page > txt_page_count) page = txt_page_count;
+		if (page < 1) page = 1;
+		txt_page_num = page;
 		f.deleteAll();
-		paginateText(text, f, 1);
+		paginateText(text, f, page);
 		if (txt_page_count > 1) {
 			f.addCommand(txt_pgup_cmd);
 			f.addCommand(txt_pgdn_cmd);
@@ -431,12 +686,15 @@ public class PocketGopher extends MIDlet
 		final int start_offset = (page - 1) * txt_page_size;
 		int end_offset = start_offset + txt_page_size;
 		if (end_offset > text.size()) end_offset = text.size();
+		final long started = System.currentTimeMillis();
 		String pagecount = "Page " + String.valueOf(page)
 			+ " of " + String.valueOf(txt_page_count);
 		f.append(pagecount + "\n\n");
 		for (int i = start_offset; i < end_offset; i++)
 			f.append((String) text.elementAt(i) + "\n");
 		f.append("\n\n" + pagecount);
+		governor.textPageRendered(System.currentTimeMillis() - started,
+			end_offset - start_offset);
 	}
 	
 	public void initNavForm() {
@@ -506,10 +764,12 @@ class DirectoryItem extends StringItem {
 	private final int layout =
 		Item.LAYOUT_NEWLINE_BEFORE | Item.LAYOUT_NEWLINE_AFTER;
 	private char itemType;
+	private String view = null; // Gopher+ MIME type and size.
 
 	public String selector;
 	public String hostname;
 	public int port;
+	public boolean gopherPlus = false;
 
 	public DirectoryItem(char itemType) {
 		super(null, "",
@@ -549,6 +809,8 @@ class DirectoryItem extends StringItem {
 		this.selector = original.selector;
 		this.hostname = original.hostname;
 		this.port = original.port;
+		this.gopherPlus = original.gopherPlus;
+		setView(original.view);
 	}
 	
 	public void setProperLabel() {
@@ -565,6 +827,12 @@ class DirectoryItem extends StringItem {
 			case 'I': setLabel("[IMG]"); break;
 			default: setLabel("[???]");
 		}
+		if (view != null) setLabel(getLabel() + " " + view);
+	}
+	
+	public void setView(String view) {
+		this.view = view;
+		setProperLabel();
 	}
 	
 	public char getItemType() { return itemType; }
@@ -622,6 +890,8 @@ class Data {
 			System.err.println(e.toString());
 		} catch (SecurityException e) {
 			System.err.println(e.toString());
+		} catch (OutOfMemoryError e) {
+			System.err.println(e.toString());
 		} finally {
 			if (is != null)
 				try { is.close(); } catch (IOException e) {}
@@ -633,6 +903,7 @@ class Data {
 		return content;
 	}
 	
+	// Returns null rather than a response cut short for lack of memory.
 	public static String slurpInputStream(InputStream is) {
 		if (is == null) return null;
 		
@@ -645,6 +916,15 @@ class Data {
 			int bytes_in = 0;
 			do {
 				bytes_in = isr.read(buffer);
+				// Growing the buffer, then copying it into a String,
+				// takes about six times its capacity in bytes.
+				if (output.length() + bytes_in > output.capacity()
+						&& !MemoryGovernor.canAllocate(
+							(long) output.capacity() * 6)) {
+					System.err.println(
+						"Low on memory; input dropped.");
+					return null;
+				}
 				if (bytes_in > -1)
 					output.append(buffer, 0, bytes_in);
 			} while (bytes_in > -1);
@@ -652,6 +932,7 @@ class Data {
 			System.err.println(e.toString());
 		} catch (OutOfMemoryError e) {
 			System.err.println(e.toString());
+			return null;
 		}
 		
 		return output.toString();
@@ -678,6 +959,11 @@ class Data {
 		return output;
 	}
 	
+	// Same result as above, parsed in chunks on up to that many threads.
+	public static Vector parseDirectory(String text, int threads) {
+		return ChunkParser.parse(text, true, '\n', threads);
+	}
+	
 	public static DirectoryItem parseDirectoryItem(String text) {
 		if (text == null || text.length() == 0) return null;
 		if (text.equals(".")) return null;
@@ -709,10 +995,68 @@ class Data {
 				item.port = 70;
 			}
 		}
+		if (record.size() > 4) { // "?" marks Gopher+ ASK items.
+			final String plus = (String) record.elementAt(4);
+			item.gopherPlus =
+				plus.startsWith("+") || plus.startsWith("?");
+		}
 		
 		return item;
 	}
 	
+	public static Vector splitString(String text, char separator, int threads) {
+		return ChunkParser.parse(text, false, separator, threads);
+	}
+	
+	public static boolean hasPlusItems(Vector dir) {
+		for (int i = 0; i < dir.size(); i++) {
+			DirectoryItem item = (DirectoryItem) dir.elementAt(i);
+			if (item != null && item.gopherPlus) return true;
+		}
+		return false;
+	}
+	
+	public static Hashtable fetchPlusViews(
+			String hostname, int port, String selector) {
+		return parsePlusViews(
+			fetchText(hostname, port, selector + "\t$"));
+	}
+	
+	// Maps each +INFO item, keyed as in ResourceCache, to its first view,
+	// e.g. "text/plain <12K>". Other attribute blocks are skipped.
+	public static Hashtable parsePlusViews(String text) {
+		Hashtable views = new Hashtable();
+		if (text == null || text.startsWith("--")) return views;
+		
+		final Vector lines = splitString(text.replace('\r', '\n'), '\n');
+		String key = null;
+		boolean in_views = false;
+		for (int i = 0; i < lines.size(); i++) {
+			final String line = (String) lines.elementAt(i);
+			if (line.startsWith("+INFO:")) {
+				DirectoryItem item = parseDirectoryItem(
+					line.substring(6).trim());
+				key = (item == null || item.hostname == null) ?
+					null : ResourceCache.keyFor(item);
+				in_views = false;
+			} else if (line.startsWith("+VIEWS:")) {
+				in_views = true;
+			} else if (line.startsWith("+")) {
+				in_views = false;
+			} else if (in_views && key != null
+					&& line.startsWith(" ")
+					&& !views.containsKey(key)) {
+				String view = line.trim();
+				final int colon = view.indexOf(':');
+				if (colon > -1)
+					view = view.substring(0, colon)
+						+ view.substring(colon + 1);
+				views.put(key, view);
+			}
+		}
+		return views;
+	}
+	
 	public static Vector splitString(String text, char separator) {
 		Vector output = new Vector();
 		
@@ -735,6 +1079,35 @@ class Data {
 		return output;
 	}
 	
+	// Nearest-neighbour scaling, one source row at a time to spare the heap.
+	public static Image scaleImage(Image img, int size) {
+		final int w = img.getWidth();
+		final int h = img.getHeight();
+		if (w <= size && h <= size) return img;
+		
+		int tw = size;
+		int th = size;
+		if (w > h)
+			th = Math.max(1, h * size / w);
+		else
+			tw = Math.max(1, w * size / h);
+		
+		int[] row = new int[w];
+		int[] output = new int[tw * th];
+		for (int y = 0; y < th; y++) {
+			img.getRGB(row, 0, w, 0, y * h / th, w, 1);
+			for (int x = 0; x < tw; x++)
+				output[y * tw + x] = row[x * w / tw];
+		}
+		return Image.createRGBImage(output, tw, th, true);
+	}
+	
+	// Cheap fingerprint of a response, to tell whether it changed.
+	public static int contentHash(String text) {
+		if (text == null) return 0;
+		return text.hashCode() * 31 + text.length();
+	}
+	
 	public static int numPages(int total_size, int page_size) {
 		if (total_size % page_size == 0)
 			return total_size / page_size;
@@ -785,3 +1158,520 @@ class Data {
 		return new DirectoryItem(type, null, selector, hostname, port);
 	}
 }
+
+class CachedResource {
+	public Object content;
+	public int hash;
+
+	public CachedResource(Object content, int hash) {
+		this.content = content;
+		this.hash = hash;
+	}
+}
+
+class ResourceCache {
+	private Hashtable entries = new Hashtable();
+	private Vector order = new Vector(); // Least recently used first.
+	private int capacity;
+
+	public ResourceCache(int capacity) {
+		this.capacity = capacity;
+	}
+	
+	public static String keyFor(DirectoryItem di) {
+		return di.hostname + " " + String.valueOf(di.port)
+			+ " " + di.selector;
+	}
+	
+	public synchronized CachedResource get(String key) {
+		CachedResource entry = (CachedResource) entries.get(key);
+		if (entry != null) {
+			order.removeElement(key);
+			order.addElement(key);
+		}
+		return entry;
+	}
+	
+	public synchronized void put(String key, Object content, int hash) {
+		order.removeElement(key);
+		order.addElement(key);
+		entries.put(key, new CachedResource(content, hash));
+		trim(capacity);
+	}
+	
+	public synchronized void trim(int max_entries) {
+		while (order.size() > max_entries) {
+			entries.remove(order.elementAt(0));
+			order.removeElementAt(0);
+		}
+	}
+	
+	public synchronized int size() { return order.size(); }
+}
+
+class MemoryGovernor {
+	public static final int MIN_PAGE_SIZE = 10;
+	private static final int LOW_MEMORY_PERCENT = 15;
+	private static final long SLOW_RENDER_MS = 400;
+	private static final long FAST_RENDER_MS = 100;
+
+	private int max_page_size;
+	private int dir_page_size;
+	private int txt_page_size;
+
+	public MemoryGovernor(int screen_lines) {
+		max_page_size = heapCeiling();
+		// About two screenfuls, as far as the heap allows.
+		if (screen_lines > 0)
+			dir_page_size = clamp(screen_lines * 2);
+		else
+			dir_page_size = clamp(25);
+		txt_page_size = dir_page_size;
+	}
+	
+	public static int freePercent() {
+		final Runtime rt = Runtime.getRuntime();
+		final long total = rt.totalMemory();
+		if (total <= 0) return 100;
+		return (int) (rt.freeMemory() * 100 / total);
+	}
+	
+	public static boolean isLow() {
+		return freePercent() < LOW_MEMORY_PERCENT;
+	}
+	
+	// Collects garbage only when the request doesn't fit comfortably.
+	public static boolean canAllocate(long bytes) {
+		final Runtime rt = Runtime.getRuntime();
+		if (rt.freeMemory() > bytes * 2) return true;
+		System.gc();
+		return rt.freeMemory() > bytes;
+	}
+	
+	public synchronized int dirPageSize() { return dir_page_size; }
+	public synchronized int textPageSize() { return txt_page_size; }
+	
+	public synchronized void dirPageRendered(long millis, int items) {
+		dir_page_size = adapt(dir_page_size, millis, items);
+	}
+	
+	public synchronized void textPageRendered(long millis, int items) {
+		txt_page_size = adapt(txt_page_size, millis, items);
+	}
+	
+	private int adapt(int size, long millis, int items) {
+		if (isLow() || millis > SLOW_RENDER_MS)
+			return clamp(size * 2 / 3);
+		else if (millis < FAST_RENDER_MS && items >= size)
+			return clamp(size + size / 4);
+		else
+			return size;
+	}
+	
+	private int clamp(int size) {
+		if (size < MIN_PAGE_SIZE) return MIN_PAGE_SIZE;
+		if (size > max_page_size) return max_page_size;
+		return size;
+	}
+	
+	private static int heapCeiling() {
+		final long total = Runtime.getRuntime().totalMemory();
+		if (total < 512 * 1024) return 15;
+		if (total < 2 * 1024 * 1024) return 25;
+		if (total < 8 * 1024 * 1024) return 50;
+		return 100;
+	}
+}
+
+class ThumbnailRequest {
+	public DirectoryItem item;
+	public ImageItem holder;
+	public int generation;
+
+	public ThumbnailRequest(DirectoryItem item, ImageItem holder, int gen) {
+		this.item = item;
+		this.holder = holder;
+		this.generation = gen;
+	}
+}
+
+// Fetches images for the menu page on screen with a few worker threads.
+// Turning the page bumps the generation, which cancels pending requests;
+// downloads already under way still finish, and only land in the cache.
+class ThumbnailLoader implements Runnable {
+	private static final int MAX_CACHED = 32;
+
+	private Vector queue = new Vector();
+	private Hashtable cache = new Hashtable();
+	private Vector cache_order = new Vector();
+	private int icon_size;
+	private int worker_count;
+	private Thread[] workers = null;
+	private int generation = 0;
+	private boolean running = true;
+
+	public ThumbnailLoader(int icon_size, int worker_count) {
+		this.icon_size = icon_size;
+		this.worker_count = worker_count;
+	}
+	
+	public synchronized void request(DirectoryItem di, ImageItem holder) {
+		if (!running) return;
+		Image thumb = (Image) cache.get(ResourceCache.keyFor(di));
+		if (thumb != null) {
+			holder.setImage(thumb);
+			return;
+		}
+		queue.addElement(new ThumbnailRequest(di, holder, generation));
+		if (workers == null) {
+			workers = new Thread[worker_count];
+			for (int i = 0; i < worker_count; i++) {
+				workers[i] = new Thread(this);
+				workers[i].start();
+			}
+		}
+		notify();
+	}
+	
+	public synchronized void cancelAll() {
+		queue.removeAllElements();
+		generation++;
+	}
+	
+	public synchronized void clearCache() {
+		cache.clear();
+		cache_order.removeAllElements();
+	}
+	
+	public synchronized void shutdown() {
+		running = false;
+		cancelAll();
+		clearCache();
+		notifyAll();
+	}
+	
+	private synchronized ThumbnailRequest next() {
+		while (running && queue.isEmpty()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		if (!running) return null;
+		ThumbnailRequest r = (ThumbnailRequest) queue.elementAt(0);
+		queue.removeElementAt(0);
+		return r;
+	}
+	
+	private synchronized void deliver(ThumbnailRequest r, Image thumb) {
+		if (thumb != null) {
+			final String key = ResourceCache.keyFor(r.item);
+			cache.put(key, thumb);
+			cache_order.removeElement(key);
+			cache_order.addElement(key);
+			while (cache_order.size() > MAX_CACHED) {
+				cache.remove(cache_order.elementAt(0));
+				cache_order.removeElementAt(0);
+			}
+		}
+		if (r.generation != generation) return; // Page turned meanwhile.
+		if (thumb != null)
+			r.holder.setImage(thumb);
+		else
+			r.holder.setAltText("(no preview)");
+	}
+	
+	public void run() {
+		ThumbnailRequest r;
+		while ((r = next()) != null) {
+			if (MemoryGovernor.isLow()) {
+				deliver(r, null);
+				continue;
+			}
+			Image full = Data.fetchImage(
+				r.item.hostname, r.item.port, r.item.selector);
+			Image thumb = null;
+			if (full != null) {
+				try {
+					thumb = Data.scaleImage(full, icon_size);
+				} catch (OutOfMemoryError e) {
+					System.err.println(e.toString());
+				}
+			}
+			full = null;
+			deliver(r, thumb);
+		}
+	}
+}
+
+// Lower-case labels of one menu, with a trigram index that is only built
+// once a query of three or more letters needs it. A low-priority thread
+// builds it in small steps, so a keystroke waits for one step at most;
+// until it's done, items not yet indexed are scanned.
+// Lists of item positions are int arrays holding their length at [0].
+class MenuIndex implements Runnable {
+	private static final int INDEX_STEP = 100;
+
+	private Vector dir;
+	private String[] labels = null;
+	private Hashtable trigrams = new Hashtable();
+	private int indexed = 0;
+	private Thread indexer = null;
+	private boolean dropped = false;
+	private String last_query = "";
+	private int[] last_hits = null;
+	private Vector last_matches;
+
+	public MenuIndex(Vector dir) {
+		this.dir = dir;
+		this.last_matches = dir;
+	}
+	
+	public boolean covers(Vector dir) { return this.dir == dir; }
+	public int size() { return dir.size(); }
+	
+	// For good: later queries scan, which needs no extra memory.
+	public synchronized void dropIndex() {
+		dropped = true;
+		trigrams.clear();
+		indexed = 0;
+	}
+	
+	public void run() {
+		while (indexStep()) Thread.yield();
+	}
+	
+	public synchronized Vector filter(String query) {
+		query = (query == null) ? "" : query.trim().toLowerCase();
+		if (query.equals(last_query)) return last_matches;
+		if (query.length() == 0) {
+			last_query = query;
+			last_hits = null;
+			last_matches = dir;
+			return dir;
+		}
+		if (labels == null) loadLabels();
+		
+		int[] hits;
+		if (last_hits != null && query.indexOf(last_query) > -1) {
+			hits = narrow(last_hits, query); // Typed one more letter.
+		} else if (query.length() >= 3) {
+			startIndexing();
+			hits = lookup(query);
+		} else {
+			hits = scan(query, 0, new int[labels.length + 1]);
+		}
+		
+		Vector matches = new Vector(hits[0]);
+		for (int i = 1; i <= hits[0]; i++)
+			matches.addElement(dir.elementAt(hits[i]));
+		last_query = query;
+		last_hits = hits;
+		last_matches = matches;
+		return matches;
+	}
+	
+	private void loadLabels() {
+		labels = new String[dir.size()];
+		for (int i = 0; i < labels.length; i++) {
+			DirectoryItem di = (DirectoryItem) dir.elementAt(i);
+			String text = (di == null) ? null : di.getText();
+			labels[i] = (text == null) ? "" : text.toLowerCase();
+		}
+	}
+	
+	private void startIndexing() {
+		if (indexer != null || dropped || indexed == labels.length)
+			return;
+		indexer = new Thread(this);
+		indexer.setPriority(Thread.MIN_PRIORITY);
+		indexer.start();
+	}
+	
+	private synchronized boolean indexStep() {
+		if (dropped || indexed == labels.length
+				|| MemoryGovernor.isLow()) {
+			indexer = null;
+			return false;
+		}
+		indexMore();
+		return true;
+	}
+	
+	private void indexMore() {
+		int end = indexed + INDEX_STEP;
+		if (end > labels.length) end = labels.length;
+		for (int i = indexed; i < end; i++) {
+			final String label = labels[i];
+			for (int j = 0; j + 3 <= label.length(); j++) {
+				final String key = label.substring(j, j + 3);
+				int[] list = (int[]) trigrams.get(key);
+				if (list == null) {
+					list = new int[4];
+					trigrams.put(key, list);
+				} else if (list[0] > 0 && list[list[0]] == i) {
+					continue; // Repeated within one label.
+				} else if (list[0] + 1 == list.length) {
+					int[] bigger = new int[list.length * 2];
+					System.arraycopy(list, 0, bigger, 0, list.length);
+					list = bigger;
+					trigrams.put(key, list);
+				}
+				list[++list[0]] = i;
+			}
+		}
+		indexed = end;
+	}
+	
+	// Candidates from the rarest trigram, checked, plus the unindexed tail.
+	private int[] lookup(String query) {
+		int[] rarest = null;
+		for (int j = 0; j + 3 <= query.length(); j++) {
+			int[] list = (int[]) trigrams.get(query.substring(j, j + 3));
+			if (list == null) {
+				rarest = new int[1];
+				break;
+			}
+			if (rarest == null || list[0] < rarest[0]) rarest = list;
+		}
+		int[] hits = new int[rarest[0] + labels.length - indexed + 1];
+		for (int i = 1; i <= rarest[0]; i++) {
+			if (labels[rarest[i]].indexOf(query) > -1)
+				hits[++hits[0]] = rarest[i];
+		}
+		return scan(query, indexed, hits);
+	}
+	
+	private int[] narrow(int[] list, String query) {
+		int[] hits = new int[list[0] + 1];
+		for (int i = 1; i <= list[0]; i++) {
+			if (labels[list[i]].indexOf(query) > -1)
+				hits[++hits[0]] = list[i];
+		}
+		return hits;
+	}
+	
+	private int[] scan(String query, int from, int[] hits) {
+		for (int i = from; i < labels.length; i++) {
+			if (labels[i].indexOf(query) > -1)
+				hits[++hits[0]] = i;
+		}
+		return hits;
+	}
+}
+
+// Cuts a large response at line boundaries and parses each chunk on its
+// own thread, for hosts with more than one core. Every chunk after the
+// first starts right after a separator, where the sequential scanners
+// would start a new element anyway, so the joined result is identical.
+class ChunkParser implements Runnable {
+	public static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+	private String text;
+	private boolean directory;
+	private char separator;
+	public Vector result = null;
+
+	public ChunkParser(String text, boolean directory, char separator) {
+		this.text = text;
+		this.directory = directory;
+		this.separator = separator;
+	}
+	
+	public void run() {
+		if (directory)
+			result = Data.parseDirectory(text);
+		else
+			result = Data.splitString(text, separator);
+	}
+	
+	public static Vector parse(String text, boolean directory,
+			char separator, int threads) {
+		final int len = (text == null) ? 0 : text.length();
+		if (threads > len / MIN_CHUNK_SIZE)
+			threads = len / MIN_CHUNK_SIZE;
+		if (threads < 1) threads = 1; // One thread: parse sequentially.
+		
+		Vector chunks = new Vector(threads);
+		int mark = 0;
+		for (int i = 1; i < threads; i++) {
+			int pos = nextBoundary(text, len * i / threads,
+				directory, separator);
+			if (pos <= mark) continue;
+			if (pos >= len) break;
+			chunks.addElement(new ChunkParser(
+				text.substring(mark, pos), directory, separator));
+			mark = pos;
+		}
+		if (chunks.isEmpty())
+			return sequential(text, directory, separator);
+		chunks.addElement(new ChunkParser(
+			text.substring(mark), directory, separator));
+		
+		Thread[] workers = new Thread[chunks.size()];
+		for (int i = 1; i < workers.length; i++) {
+			workers[i] = new Thread((ChunkParser) chunks.elementAt(i));
+			workers[i].start();
+		}
+		((ChunkParser) chunks.elementAt(0)).run();
+		
+		// Wait the workers out even if interrupted, then pass the
+		// interrupt on to the caller.
+		boolean interrupted = false;
+		for (int i = 1; i < workers.length; i++) {
+			while (workers[i].isAlive()) {
+				try {
+					workers[i].join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		
+		int total = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			ChunkParser chunk = (ChunkParser) chunks.elementAt(i);
+			if (chunk.result == null) // Worker died, likely of OOM.
+				return sequential(text, directory, separator);
+			total += chunk.result.size();
+		}
+		
+		Vector output = new Vector(total);
+		for (int i = 0; i < chunks.size(); i++) {
+			Vector part = ((ChunkParser) chunks.elementAt(i)).result;
+			for (int j = 0; j < part.size(); j++)
+				output.addElement(part.elementAt(j));
+		}
+		return output;
+	}
+	
+	private static Vector sequential(String text, boolean directory,
+			char separator) {
+		if (directory)
+			return Data.parseDirectory(text);
+		else
+			return Data.splitString(text, separator);
+	}
+	
+	// Directories skip runs of blank lines, so a chunk must start
+	// past the whole run; plain text may start right after any separator.
+	private static int nextBoundary(String text, int from,
+			boolean directory, char separator) {
+		final int len = text.length();
+		int pos = from;
+		if (directory) {
+			while (pos < len && !isNewline(text.charAt(pos))) pos++;
+			while (pos < len && isNewline(text.charAt(pos))) pos++;
+			return pos;
+		} else {
+			while (pos < len && text.charAt(pos) != separator) pos++;
+			return pos + 1;
+		}
+	}
+	
+	private static boolean isNewline(char c) {
+		return c == '\n' || c == '\r';
+	}
+}